@@ -15,6 +15,7 @@ public class ClientHandler extends Thread {
     protected DataOutputStream outputStream;
     protected Socket socket;
     protected Client client;
+    protected MessageCodec codec;
 
     /**
      * Constructor
@@ -34,13 +35,25 @@ public class ClientHandler extends Thread {
     public void run() {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         try {
+            // Offer compression before anything else. The server sends its first prompt before it
+            // reads the offer, so every message after that first prompt is framed by the codec
+            outputStream.writeUTF(MessageCodec.NEGOTIATE);
+            outputStream.flush();
             while (!Thread.currentThread().isInterrupted()) {
                 assert this.inputStream != null;
                 assert this.outputStream != null;
-                System.out.println(inputStream.readUTF());
+                String message = (codec != null) ? codec.read(inputStream) : inputStream.readUTF();
+                if (codec == null) {
+                    codec = new MessageCodec();
+                }
+                System.out.println(message);
                 String userInput = reader.readLine();
-                outputStream.writeUTF(userInput);
-                outputStream.flush();
+                if (codec != null) {
+                    codec.write(outputStream, userInput);
+                } else {
+                    outputStream.writeUTF(userInput);
+                    outputStream.flush();
+                }
             }
         } catch (Exception e) {
             //e.printStackTrace();
@@ -58,6 +71,9 @@ public class ClientHandler extends Thread {
             inputStream.close();
             outputStream.close();
             socket.close();
+            if (codec != null) {
+                codec.end();
+            }
             Thread.currentThread().interrupt();
         } catch (IOException e) {
             e.printStackTrace();
@@ -5,10 +5,14 @@
  * 11/2023
  * 
  * */
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class to handle server client interactions on each thread
@@ -17,11 +21,12 @@ import java.net.Socket;
 public class ClientThread extends Thread {
     private final Socket socket;
     private final int numFailures;
-    private boolean clientAlive = false;
-    private String username;
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.CONNECTING);
+    private volatile String username;
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
     private Server server;
+    private volatile MessageCodec codec;
 
     /**
      * Initialises a new ClientHandler to facilitate communication between the
@@ -37,7 +42,7 @@ public class ClientThread extends Thread {
         this.username = "";
         try {
             this.outputStream = new DataOutputStream(socket.getOutputStream());
-            this.inputStream = new DataInputStream(socket.getInputStream());
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -45,18 +50,24 @@ public class ClientThread extends Thread {
 
     /**
      * Handles the logging in of a user
+     * @throws IOException  if a login timeout can't be saved
      */
-    private boolean authUserLogin() {
+    private boolean authUserLogin() throws IOException {
         int loginAttempts = numFailures;
         boolean loggedIn = false;
         boolean validUser = false;
         String password = "";
+        boolean firstPrompt = true;
         User user = server.findUser(username);
 
         // Request username
-        while (!validUser) {
+        while (!validUser && !isClosing()) {
             sendMsg("Username: ");
             username = readMsg();
+            if (firstPrompt) {
+                firstPrompt = false;
+                username = negotiateCompression(username);
+            }
             user = server.findUser(username);
             if (user != null) {
                 validUser = true;
@@ -74,7 +85,7 @@ public class ClientThread extends Thread {
         }
 
         // Request password
-        while (!loggedIn) {
+        while (!loggedIn && !isClosing()) {
             sendMsg("Password: ");
             password = readMsg();
             if (user.getTimeout()) {
@@ -85,13 +96,54 @@ public class ClientThread extends Thread {
             } else {
                 loginAttempts--;
                 if (loginAttempts == 0) {
-                    user.setTimeout();
+                    server.timeoutUser(user);
                 }
             }
         }
 
-        // Successful Login
-        return true;
+        // Successful Login, unless the connection was lost part way through
+        return loggedIn;
+    }
+
+    /**
+     * Turns on compression if the client asked for it.
+     * A client that supports compression sends the offer as its first message, before the username,
+     * and frames everything after it. Older clients send the username straight away.
+     * @param firstMsg  the first message the client sent
+     * @return          the username, read again if the first message was the offer
+     */
+    private String negotiateCompression(String firstMsg) {
+        if (!MessageCodec.NEGOTIATE.equals(firstMsg)) {
+            return firstMsg;
+        }
+        codec = new MessageCodec();
+        return readMsg();
+    }
+
+    /**
+     * Getter
+     * @return  the current state of this session
+     */
+    public SessionState getSessionState() {
+        return state.get();
+    }
+
+    /**
+     * Checks if the session is being torn down or already has been
+     * @return
+     */
+    public boolean isClosing() {
+        return state.get().isClosing();
+    }
+
+    /**
+     * Atomically moves the session from one state to another
+     * @param from  the state the session is expected to be in
+     * @param to    the state to move to
+     * @return      true if the session was in the expected state and has moved
+     */
+    private boolean transition(SessionState from, SessionState to) {
+        return from.canMoveTo(to) && state.compareAndSet(from, to);
     }
 
     /**
@@ -100,8 +152,17 @@ public class ClientThread extends Thread {
      */
     public String readMsg() {
         String message = "";
+        if (isClosing()) {
+            return message;
+        }
         try {
-            message = inputStream.readUTF();
+            long readStart = Tracer.start();
+            if (codec != null) {
+                message = codec.read(inputStream);
+            } else {
+                message = inputStream.readUTF();
+            }
+            Tracer.stop(Tracer.Stage.READ, readStart);
         } catch (IOException e) {
             e.printStackTrace();
             close();
@@ -109,14 +170,58 @@ public class ClientThread extends Thread {
         return message;
     }
 
+    /**
+     * Waits for the next command to arrive, then starts tracing it.
+     * Waiting first means the time the user spends typing isn't counted as reading.
+     */
+    private void awaitCommand() throws IOException {
+        if (!Tracer.ENABLED) return;
+        inputStream.mark(1);
+        if (inputStream.read() == -1) {
+            throw new EOFException();
+        }
+        inputStream.reset();
+        Tracer.begin("command");
+    }
+
     /**
      * Sends a String message to the user
      * @param message 	the message to send to the user
      */
     public void sendMsg(String message) {
+        if (state.get() == SessionState.CLOSED) {
+            return;
+        }
+        long sendStart = Tracer.start();
         try {
-            outputStream.writeUTF(message);
-            outputStream.flush();
+            if (codec != null) {
+                codec.write(outputStream, message);
+            } else {
+                outputStream.writeUTF(message);
+                outputStream.flush();
+            }
+            Tracer.stop(Tracer.Stage.SEND, sendStart);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Sends several messages to the user at once, e.g. group history or stored messages.
+     * If compression was negotiated the batch is compressed as a whole.
+     * Nothing calls this yet, it is meant for group history once the command loop in run() is restored.
+     * @param messages 	the messages to send to the user
+     */
+    public void sendBatch(List<String> messages) {
+        if (codec == null) {
+            sendMsg(String.join(System.lineSeparator(), messages));
+            return;
+        }
+        long sendStart = Tracer.start();
+        try {
+            codec.writeBatch(outputStream, messages);
+            Tracer.stop(Tracer.Stage.SEND, sendStart);
         } catch (IOException e) {
             e.printStackTrace();
             close();
@@ -125,20 +230,37 @@ public class ClientThread extends Thread {
 
     /**
      * Clean up the ClientHandler.
-     * Closes socket and its stream threads.
-     * Also removes the client and interrupts the thread
+     * Closes socket and its stream threads, and removes the client if it had logged in.
+     * Safe to call any number of times from any thread, only the first call tears the session down.
      */
     public void close() {
-        try {
+        SessionState previous;
+        do {
+            previous = state.get();
+            if (previous.isClosing()) {
+                return;
+            }
+        } while (!transition(previous, SessionState.DRAINING));
+
+        if (previous == SessionState.ACTIVE) {
             server.removeClient(this, username);
+        }
+        try {
+            outputStream.flush();
+        } catch (IOException e) {
+            // Client has already gone, nothing left to drain
+        }
+        try {
             inputStream.close();
             outputStream.close();
             socket.close();
-            Thread.currentThread().interrupt();
-
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (codec != null) {
+            codec.end();
+        }
+        transition(SessionState.DRAINING, SessionState.CLOSED);
     }
 
     @Override
@@ -150,7 +272,9 @@ public class ClientThread extends Thread {
         String clientID = "("+ clientAddress + ", " + clientPort + ")";
 
         System.out.println("===== New connection created for user - " + clientID);
-        clientAlive = true;
+        if (!transition(SessionState.CONNECTING, SessionState.AUTHENTICATING)) {
+            return;
+        }
 
         // define the dataInputStream to get message (input) from client
         // DataInputStream - used to acquire input from client
@@ -164,14 +288,29 @@ public class ClientThread extends Thread {
             e.printStackTrace();
         }
 
-        while (clientAlive) {
+        while (!isClosing()) {
             try {
                 // Authentication
-                if (authUserLogin()) {
+                if (state.get() == SessionState.AUTHENTICATING) {
+                    if (!authUserLogin()) {
+                        close();
+                        return;
+                    }
                     server.addClient(this, username);
-                } else {
-                    close();
-                    return;
+                    // If the session was closed while logging in, close() didn't know to remove the client
+                    if (!transition(SessionState.AUTHENTICATING, SessionState.ACTIVE)) {
+                        server.removeClient(this, username);
+                        return;
+                    }
+                    // The client waits for a reply to its password, so greet it before waiting for a command
+                    sendMsg("=== Welcome, " + username + " ===");
+                }
+                // Only commands are traced, login prompts would count the user's typing time
+                awaitCommand();
+                String data = readMsg();
+                long handleStart = Tracer.start();
+                if (Tracer.ENABLED) {
+                    Tracer.label(data.split(" ")[0]);
                 }
 
                 // while (!Thread.currentThread().isInterrupted()) {
@@ -305,10 +444,17 @@ public class ClientThread extends Thread {
                 //             sendMsg("That is not a valid command.");
                 //     }
                 // }
+                // Until the command loop above is restored, answer every command so the client
+                // gets its next prompt instead of both sides waiting on a read
+                Tracer.stop(Tracer.Stage.HANDLE, handleStart);
+                if (!isClosing()) {
+                    sendMsg("That is not a valid command.");
+                }
+                Tracer.end();
             } catch (Exception e) {
                 System.out.println("===== the user disconnected, user - " + clientID);
-                clientAlive = false;
                 e.printStackTrace();
+                close();
             }
         }
     }
@@ -5,13 +5,26 @@
  * 
  * */
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class Group {
+    // Format of the timestamps written to GROUPNAME_messageLog.txt
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("d MMM yyyy HH:mm:ss", Locale.ENGLISH);
+
     private List<String> invited;
     private List<String> members;
     private String name;
@@ -26,6 +39,20 @@ public class Group {
         this.members.add(owner);
     }
 
+    /**
+     * Rebuilds a group from a server snapshot
+     * @param name      name of the group
+     * @param members   users who have joined, owner first
+     * @param invited   users invited who have not yet joined
+     * @param numMsgs   number the next logged message will be given
+     */
+    public Group(String name, List<String> members, List<String> invited, int numMsgs) {
+        this.name = name;
+        this.invited = new ArrayList<>(invited);
+        this.members = new ArrayList<>(members);
+        this.numMsgs = numMsgs;
+    }
+
     /**
      * Function for /groupjoin command
      * true if user is invited and not already a member, false if otherwise
@@ -70,6 +97,39 @@ public class Group {
         return members;
     }
 
+    /**
+     * Getter
+     * @return  users invited who have not yet joined
+     */
+    public List<String> getInvited() {
+        return invited;
+    }
+
+    /**
+     * Getter
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Getter
+     * @return  the number the next logged message will be given
+     */
+    public int getNumMsgs() {
+        return numMsgs;
+    }
+
+    /**
+     * Moves the message counter forward when replaying the server journal
+     * Never moves it backwards, so numbers already handed out are not reused
+     * @param numMsgs   the number the next logged message should be given
+     */
+    public void restoreNumMsgs(int numMsgs) {
+        this.numMsgs = Math.max(this.numMsgs, numMsgs);
+    }
+
     /**
      * Helper Function for messagelog.txt
      * Creates and then subsequently writes to the GROUPNAME_messageLog.txt file every time a message is sent
@@ -89,4 +149,50 @@ public class Group {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Formats a send time the way it is written to GROUPNAME_messageLog.txt
+     * @param time  time in epoch milliseconds
+     * @return      the timestamp to pass to logMsg
+     */
+    public static String formatTimestamp(long time) {
+        return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+    }
+
+    /**
+     * Reads a timestamp written by formatTimestamp back into epoch milliseconds
+     * @param timestamp     the logged timestamp
+     * @return              the time, or -1 if it wasn't written by formatTimestamp
+     */
+    public static long parseTimestamp(String timestamp) {
+        try {
+            return LocalDateTime.parse(timestamp, TIMESTAMP_FORMAT)
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads back every message logged for this group so far
+     * Intended to be sent to a member in one batch with ClientThread.sendBatch,
+     * once there is a command to request it
+     * @return  the lines of GROUPNAME_messageLog.txt, empty if nothing has been logged
+     */
+    public List<String> getMessageLog() {
+        List<String> log = new ArrayList<>();
+        File logFile = new File(name + "_messageLog.txt");
+        if (!logFile.exists()) {
+            return log;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.add(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return log;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/*
+ * Helper Class to persist server state across restarts
+ * Write-ahead journal of state changes plus periodic snapshots
+ *
+ * 11/2023
+ *
+ * */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Every state change is appended to the journal and synced to disk before it is applied.
+ * Once enough records build up, the full state is written to a snapshot and the journal is emptied,
+ * so recovery only ever replays one snapshot plus a bounded journal tail.
+ * Records are stored one per line in the format: TYPE;field;field...
+ * Fields are URL encoded, so names containing the separators or new lines can't corrupt a record.
+ */
+public class Journal {
+    public static final String SEPARATOR = ";";
+    public static final String LIST_SEPARATOR = ",";
+
+    private final File journalFile;
+    private final File snapshotFile;
+    private final int snapshotInterval;
+    private FileOutputStream journalStream;
+    private Writer journalWriter;
+    private int numRecords = 0;
+
+    /**
+     * @param journalPath       file the journal is appended to
+     * @param snapshotPath      file the latest snapshot is kept in
+     * @param snapshotInterval  number of journal records written before a snapshot is due
+     */
+    public Journal(String journalPath, String snapshotPath, int snapshotInterval) {
+        this.journalFile = new File(journalPath);
+        this.snapshotFile = new File(snapshotPath);
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Replays the latest snapshot followed by the journal, then opens the journal for appending.
+     * A record cut short by a crash is passed on like any other, so apply should ignore records
+     * it can't parse. Such a record is dropped by the next snapshot.
+     * @param apply     applies a single record, already split into its fields
+     */
+    public synchronized void recover(Consumer<String[]> apply) throws IOException {
+        replay(snapshotFile, apply);
+        numRecords = replay(journalFile, apply);
+        openJournal(true);
+    }
+
+    /**
+     * Appends a record and forces it to disk
+     * @param fields    the record type followed by its fields
+     */
+    public synchronized void append(String... fields) throws IOException {
+        // Reopen if a snapshot couldn't. Any old records left in the file are already
+        // covered by the snapshot, and replaying them again leads to the same state
+        if (journalWriter == null) {
+            openJournal(true);
+        }
+        journalWriter.write(encode(fields));
+        journalWriter.write(System.lineSeparator());
+        journalWriter.flush();
+        journalStream.getFD().sync();
+        numRecords++;
+    }
+
+    /**
+     * Checks if enough records have been written since the last snapshot
+     * @return  true if a snapshot should be taken
+     */
+    public synchronized boolean snapshotDue() {
+        return numRecords >= snapshotInterval;
+    }
+
+    /**
+     * Replaces the snapshot with the given state and empties the journal.
+     * The snapshot is written to a temporary file first, so a crash part way through
+     * leaves the previous snapshot and journal untouched.
+     * @param records   records describing the complete current state
+     */
+    public synchronized void snapshot(List<String[]> records) throws IOException {
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            for (String[] record : records) {
+                writer.write(encode(record));
+                writer.write(System.lineSeparator());
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (journalWriter != null) {
+            journalWriter.close();
+            journalWriter = null;
+        }
+        openJournal(false);
+        numRecords = 0;
+    }
+
+    /**
+     * Joins a list into a single field, encoding each item so it can't contain the separator
+     * @param items     the list to store
+     * @return          the field to pass to append
+     */
+    public static String joinList(List<String> items) {
+        List<String> encoded = new ArrayList<>();
+        for (String item : items) {
+            encoded.add(URLEncoder.encode(item, StandardCharsets.UTF_8));
+        }
+        return String.join(LIST_SEPARATOR, encoded);
+    }
+
+    /**
+     * Splits a field written by joinList back into a list
+     * @param field     the field read back from a record
+     * @return          the stored list
+     */
+    public static List<String> splitList(String field) {
+        List<String> items = new ArrayList<>();
+        if (field.isEmpty()) {
+            return items;
+        }
+        for (String item : field.split(LIST_SEPARATOR, -1)) {
+            items.add(URLDecoder.decode(item, StandardCharsets.UTF_8));
+        }
+        return items;
+    }
+
+    private static String encode(String[] fields) {
+        String[] encoded = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = URLEncoder.encode(fields[i], StandardCharsets.UTF_8);
+        }
+        return String.join(SEPARATOR, encoded);
+    }
+
+    private void openJournal(boolean append) throws IOException {
+        journalStream = new FileOutputStream(journalFile, append);
+        journalWriter = new OutputStreamWriter(journalStream, StandardCharsets.UTF_8);
+    }
+
+    private int replay(File file, Consumer<String[]> apply) throws IOException {
+        int count = 0;
+        if (!file.exists()) {
+            return count;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = line.split(SEPARATOR, -1);
+                try {
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = URLDecoder.decode(fields[i], StandardCharsets.UTF_8);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Cut short part way through an escape, leave as is for apply to reject
+                }
+                apply.accept(fields);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Helper Class to compress messages sent over a connection
+ * Negotiated once at login, then used for every message on that connection
+ *
+ * 11/2023
+ *
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frames messages as: flag (1 byte); original length (int); payload length (int); payload
+ * Messages under the threshold are sent raw, larger ones are deflated unless that doesn't make them smaller.
+ * One codec belongs to one connection, so its Deflater/Inflater are reused
+ * between messages rather than created for each one.
+ */
+public class MessageCodec {
+    // Sent by a client that supports compression as its first message, before the username
+    public static final String NEGOTIATE = "compression,deflate";
+    public static final int DEFAULT_THRESHOLD = 256;
+    // Largest message either side will send or accept, before or after compression
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    private final int threshold;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[8192];
+    private boolean ended = false;
+
+    public MessageCodec() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold     smallest message size in bytes that is worth compressing
+     */
+    public MessageCodec(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Writes a single message to the stream
+     * @param out       the connection's output stream
+     * @param message   the message to send
+     */
+    public synchronized void write(DataOutputStream out, String message) throws IOException {
+        if (ended) {
+            throw new IOException("Connection closed");
+        }
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        if (data.length > MAX_FRAME_SIZE) {
+            throw new IOException("Message too large: " + data.length + " bytes");
+        }
+        byte[] compressed = (data.length < threshold) ? null : deflate(data);
+        // Send raw if deflating didn't help, which also keeps every frame within MAX_FRAME_SIZE
+        if (compressed == null || compressed.length >= data.length) {
+            out.writeByte(RAW);
+            out.writeInt(data.length);
+            out.writeInt(data.length);
+            out.write(data);
+        } else {
+            out.writeByte(DEFLATED);
+            out.writeInt(data.length);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a batch of messages (e.g. message history) as one frame, one message per line,
+     * so the whole batch is compressed as a single unit
+     * @param out       the connection's output stream
+     * @param messages  the messages to send
+     */
+    public void writeBatch(DataOutputStream out, List<String> messages) throws IOException {
+        write(out, String.join(System.lineSeparator(), messages));
+    }
+
+    /**
+     * Reads a single frame from the stream
+     * The header comes from the peer, so it is checked before anything is allocated
+     * @param in    the connection's input stream
+     * @return      the message, or the lines of a batch joined by new lines
+     * @throws IOException  if the stream fails or the frame header is invalid
+     */
+    public String read(DataInputStream in) throws IOException {
+        byte flag = in.readByte();
+        int length = in.readInt();
+        int payloadLength = in.readInt();
+        if (flag != RAW && flag != DEFLATED) {
+            throw new IOException("Invalid frame flag: " + flag);
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE || payloadLength < 0 || payloadLength > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length + ", payload " + payloadLength);
+        }
+        if (flag == RAW && length != payloadLength) {
+            throw new IOException("Raw frame length " + length + " does not match payload " + payloadLength);
+        }
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        if (flag == RAW) {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+        return new String(inflate(payload, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Releases the native memory held by the compressor.
+     * Called once the connection is closed.
+     */
+    public synchronized void end() {
+        ended = true;
+        deflater.end();
+        inflater.end();
+    }
+
+    private byte[] deflate(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 16);
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+        }
+        return compressed.toByteArray();
+    }
+
+    private synchronized byte[] inflate(byte[] payload, int length) throws IOException {
+        if (ended) {
+            throw new IOException("Connection closed");
+        }
+        byte[] data = new byte[length];
+        inflater.reset();
+        inflater.setInput(payload);
+        try {
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int n = inflater.inflate(data, offset, length - offset);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset != length) {
+                throw new IOException("Truncated compressed message");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed message", e);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Helper Class to search group message history
+ * Incremental inverted index over every logged group message
+ *
+ * 11/2023
+ *
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Maps each term to the ids of the messages containing it.
+ * New messages go into a small in-memory segment which is sealed once full. Sealed segments store
+ * their postings as delta encoded varints. Merges run in tiers on a background thread: once
+ * MERGE_FACTOR segments of the same level sit next to each other they are merged into one segment
+ * of the next level. Each message is only rewritten once per level, and a query only has to look
+ * at a handful of segments per level.
+ */
+public class SearchIndex {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int MERGE_FACTOR = 8;
+    private static final int CHUNK_SIZE = 4096;
+
+    // Messages by id, in fixed size chunks that are never moved, so searches can read them without the lock
+    private volatile Message[][] chunks = new Message[16][];
+    private int numMessages = 0;
+    private Map<String, int[]> active = new HashMap<>();
+    private Map<String, Integer> activeCounts = new HashMap<>();
+    private int activeSize = 0;
+    private List<Segment> segments = new ArrayList<>();
+    private boolean merging = false;
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-index-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A logged group message matched by a search
+     */
+    public static class Message {
+        public final String group;
+        public final int number;
+        public final String sender;
+        public final long time;
+
+        private Message(String group, int number, String sender, long time) {
+            this.group = group;
+            this.number = number;
+            this.sender = sender;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return group + " #" + number + " (" + sender + ")";
+        }
+    }
+
+    /**
+     * Adds a logged message to the index
+     * @param group        the group the message was sent to
+     * @param number       the message number from the group's log
+     * @param time         time the message was sent, in epoch milliseconds
+     * @param sender       user who sent the message
+     * @param message      the message contents
+     */
+    public synchronized void add(String group, int number, long time, String sender, String message) {
+        int id = numMessages;
+        int chunk = id / CHUNK_SIZE;
+        Message[][] current = chunks;
+        if (chunk == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        if (current[chunk] == null) {
+            current[chunk] = new Message[CHUNK_SIZE];
+        }
+        current[chunk][id % CHUNK_SIZE] = new Message(group, number, sender, time);
+        chunks = current;
+        numMessages++;
+        for (String term : tokenize(message)) {
+            int count = activeCounts.getOrDefault(term, 0);
+            int[] ids = active.get(term);
+            if (ids == null) {
+                ids = new int[4];
+            } else if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count] = id;
+            active.put(term, ids);
+            activeCounts.put(term, count + 1);
+        }
+        activeSize++;
+        if (activeSize >= SEGMENT_SIZE) {
+            seal();
+        }
+    }
+
+    /**
+     * Adds a line read back from a GROUPNAME_messageLog.txt file
+     * Lines are in the format: messageNumber; timestamp; username; message
+     * A timestamp not written by Group.formatTimestamp is stored as -1, so the line
+     * is still found by term but only matches time ranges that start before 0
+     * @param group     the group the log belongs to
+     * @param line      the logged line
+     * @return          true if the line could be parsed and was indexed
+     */
+    public boolean addLogLine(String group, String line) {
+        String[] fields = line.split("; ", 4);
+        if (fields.length != 4) {
+            return false;
+        }
+        try {
+            add(group, Integer.parseInt(fields[0]), Group.parseTimestamp(fields[1]), fields[2], fields[3]);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds messages containing every term in the query
+     * Posting lists are decoded lazily and the search stops as soon as limit messages match.
+     * The lock is only held while taking a snapshot of the segments.
+     * @param query     the words to search for
+     * @param groups    only match messages sent to one of these groups, or null for any group
+     * @param sender    only match messages sent by this user, or null for any user
+     * @param from      earliest send time in epoch milliseconds, inclusive
+     * @param to        latest send time in epoch milliseconds, inclusive
+     * @param limit     maximum number of messages to return
+     * @return          matching messages, oldest first
+     */
+    public List<Message> search(String query, Set<String> groups, String sender, long from, long to, int limit) {
+        Set<String> terms = tokenize(query);
+        List<Message> results = new ArrayList<>();
+        if (terms.isEmpty() || limit <= 0) {
+            return results;
+        }
+
+        // Segments are oldest first and the in-memory segment is always newest
+        List<Postings[]> matches = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                Postings[] postings = segment.postings(terms);
+                if (postings != null) matches.add(postings);
+            }
+            Postings[] activePostings = new Postings[terms.size()];
+            int i = 0;
+            for (String term : terms) {
+                int[] ids = active.get(term);
+                if (ids == null) {
+                    activePostings = null;
+                    break;
+                }
+                activePostings[i++] = new Postings(Arrays.copyOf(ids, activeCounts.get(term)));
+            }
+            if (activePostings != null) matches.add(activePostings);
+        }
+
+        Message[][] messages = chunks;
+        for (Postings[] postings : matches) {
+            for (int id = nextMatch(postings, 0); id != -1; id = nextMatch(postings, id + 1)) {
+                Message message = messages[id / CHUNK_SIZE][id % CHUNK_SIZE];
+                if (groups != null && !groups.contains(message.group)) continue;
+                if (sender != null && !sender.equals(message.sender)) continue;
+                if (message.time < from || message.time > to) continue;
+                results.add(message);
+                if (results.size() == limit) {
+                    return results;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Finds the next id of at least target that appears in every posting list
+     * @return  the id, or -1 if there are no more
+     */
+    private static int nextMatch(Postings[] postings, int target) {
+        int candidate = postings[0].advance(target);
+        int agreed = 1;
+        int i = 1;
+        while (candidate != -1 && agreed < postings.length) {
+            int id = postings[i].advance(candidate);
+            if (id == candidate) {
+                agreed++;
+            } else {
+                candidate = id;
+                agreed = 1;
+            }
+            i = (i + 1) % postings.length;
+        }
+        return candidate;
+    }
+
+    private static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) terms.add(term);
+        }
+        return terms;
+    }
+
+    /**
+     * Seals the in-memory segment and starts a background merge if too many segments have built up
+     */
+    private void seal() {
+        Map<String, byte[]> postings = new HashMap<>();
+        for (Map.Entry<String, int[]> entry : active.entrySet()) {
+            postings.put(entry.getKey(), encode(entry.getValue(), activeCounts.get(entry.getKey())));
+        }
+        List<Segment> updated = new ArrayList<>(segments);
+        updated.add(new Segment(postings, 0));
+        segments = updated;
+        active = new HashMap<>();
+        activeCounts = new HashMap<>();
+        activeSize = 0;
+        maybeMerge();
+    }
+
+    /**
+     * Starts a background merge of the first MERGE_FACTOR neighbouring segments that share a level.
+     * Only one merge runs at a time, the next is looked for once it finishes.
+     */
+    private void maybeMerge() {
+        if (merging) {
+            return;
+        }
+        int runStart = 0;
+        for (int i = 1; i <= segments.size(); i++) {
+            if (i < segments.size() && segments.get(i).level == segments.get(runStart).level) {
+                if (i - runStart + 1 == MERGE_FACTOR) {
+                    merging = true;
+                    List<Segment> toMerge = new ArrayList<>(segments.subList(runStart, i + 1));
+                    merger.execute(() -> merge(toMerge));
+                    return;
+                }
+            } else {
+                runStart = i;
+            }
+        }
+    }
+
+    /**
+     * Merges the given neighbouring segments into one and swaps it in for them.
+     * Segments hold ascending, non-overlapping ranges of ids, so each term's
+     * postings can simply be appended in segment order.
+     */
+    private void merge(List<Segment> toMerge) {
+        Map<String, ByteArrayOutputStream> merged = new HashMap<>();
+        Map<String, Integer> lastIds = new HashMap<>();
+        for (Segment segment : toMerge) {
+            for (Map.Entry<String, byte[]> entry : segment.postings.entrySet()) {
+                int[] ids = decode(entry.getValue());
+                ByteArrayOutputStream out = merged.computeIfAbsent(entry.getKey(), k -> new ByteArrayOutputStream());
+                int last = lastIds.getOrDefault(entry.getKey(), 0);
+                for (int id : ids) {
+                    writeVarint(out, id - last);
+                    last = id;
+                }
+                lastIds.put(entry.getKey(), last);
+            }
+        }
+        Map<String, byte[]> postings = new HashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : merged.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+
+        synchronized (this) {
+            // Only seal() changes segments while a merge runs, and it only appends, so the run is still in place
+            List<Segment> updated = new ArrayList<>(segments);
+            int start = updated.indexOf(toMerge.get(0));
+            updated.subList(start, start + toMerge.size()).clear();
+            updated.add(start, new Segment(postings, toMerge.get(0).level + 1));
+            segments = updated;
+            merging = false;
+            maybeMerge();
+        }
+    }
+
+    private static byte[] encode(int[] ids, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count * 2);
+        int last = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarint(out, ids[i] - last);
+            last = ids[i];
+        }
+        return out.toByteArray();
+    }
+
+    private static int[] decode(byte[] postings) {
+        int[] ids = new int[postings.length];
+        int n = 0, last = 0, value = 0, shift = 0;
+        for (byte b : postings) {
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) != 0) {
+                shift += 7;
+                continue;
+            }
+            last += value;
+            ids[n++] = last;
+            value = 0;
+            shift = 0;
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * An immutable set of compressed postings covering a range of message ids
+     * Level 0 segments are sealed from memory, level n + 1 segments are merged from level n
+     */
+    private static class Segment {
+        private final Map<String, byte[]> postings;
+        private final int level;
+
+        private Segment(Map<String, byte[]> postings, int level) {
+            this.postings = postings;
+            this.level = level;
+        }
+
+        /**
+         * @return  a reader for each term's postings, or null if a term isn't in this segment
+         */
+        private Postings[] postings(Set<String> terms) {
+            Postings[] result = new Postings[terms.size()];
+            int i = 0;
+            for (String term : terms) {
+                byte[] encoded = postings.get(term);
+                if (encoded == null) {
+                    return null;
+                }
+                result[i++] = new Postings(encoded);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Reads a posting list in order, decoding delta encoded varints only as far as needed
+     */
+    private static class Postings {
+        private final byte[] encoded;
+        private final int[] ids;
+        private int position = 0;
+        private int current = -1;
+
+        private Postings(byte[] encoded) {
+            this.encoded = encoded;
+            this.ids = null;
+        }
+
+        private Postings(int[] ids) {
+            this.encoded = null;
+            this.ids = ids;
+        }
+
+        /**
+         * Skips forward to the first id of at least target
+         * @return  the id, or -1 if the list has run out
+         */
+        private int advance(int target) {
+            while (current < target) {
+                if (ids != null) {
+                    current = (position < ids.length) ? ids[position++] : -1;
+                } else if (position < encoded.length) {
+                    int value = 0, shift = 0;
+                    byte b;
+                    do {
+                        b = encoded[position++];
+                        value |= (b & 0x7f) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    current = (current == -1 ? 0 : current) + value;
+                } else {
+                    current = -1;
+                }
+                if (current == -1) {
+                    return -1;
+                }
+            }
+            return current;
+        }
+    }
+}
@@ -9,7 +9,9 @@
 
 import java.net.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.io.*;
 import java.util.logging.*;
 
@@ -20,13 +22,22 @@ public class Server {
     private static Integer serverPort;
     private static final Logger logger = Logger.getLogger(Server.class.getName());
     public static int numFailures;
+    private static final int SNAPSHOT_INTERVAL = 1000;
 
     private List<String> activeUsers;
     private List<User> users;
+    private List<Group> groups;
+    private Journal journal;
+    private SearchIndex searchIndex;
 
-    public Server() {
+    /**
+     * Loads users from credentials.txt and restores state saved by the journal
+     * @throws IOException  if the saved state can't be read or the journal can't be opened
+     */
+    public Server() throws IOException {
         activeUsers = new ArrayList<>();
         users = new ArrayList<User>();
+        groups = new ArrayList<>();
 
         // Initialise users with data in credential.txt file
         File credentialFile = new File("credentials.txt");
@@ -43,18 +54,35 @@ public class Server {
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        // Restore state from before the last shutdown or crash, then compact it into a fresh snapshot
+        // Starting without the journal would lose the state and reuse message numbers, so failures stop startup
+        journal = new Journal("server_journal.txt", "server_snapshot.txt", SNAPSHOT_INTERVAL);
+        journal.recover(this::applyRecord);
+        journal.snapshot(snapshotRecords());
+
+        // Index the message history of every recovered group
+        searchIndex = new SearchIndex();
+        for (Group group : groups) {
+            for (String line : group.getMessageLog()) {
+                searchIndex.addLogLine(group.getName(), line);
+            }
+        }
     }
 
     /**
      * Adding a client entry to current collection of active users
      * @param client        the ClientThread to be stored
      * @param username      the name of the user being handled by ClientThread
+     * @throws IOException  if the login can't be journaled, in which case the client isn't added
      */
-    public synchronized void addClient(ClientThread client, String username) {
+    public synchronized void addClient(ClientThread client, String username) throws IOException {
+        record("LOGIN", username, Long.toString(System.currentTimeMillis() / 1000));
         activeUsers.add(username);
         User newClient = findUser(username);
         newClient.setThread(client);
         newClient.setActive(true);
+        snapshotIfDue();
     }
 
     public synchronized void removeClient(ClientThread client, String username) {
@@ -78,12 +106,228 @@ public class Server {
      * @return
      */
     public User findUser(String username) {
+        long lookupStart = Tracer.start();
+        try {
+            for (User user : users) {
+                if (user.getUsername().equals(username)) {
+                    return user;
+                }
+            }
+            return null;
+        } finally {
+            Tracer.stop(Tracer.Stage.LOOKUP, lookupStart);
+        }
+    }
+
+    /**
+     * Blocks a user from logging in after too many failed attempts
+     * @param user  the user to time out
+     * @throws IOException  if the timeout can't be journaled, in which case it isn't applied
+     */
+    public synchronized void timeoutUser(User user) throws IOException {
+        record("TIMEOUT", user.getUsername(), Long.toString(System.currentTimeMillis() / 1000));
+        user.setTimeout();
+        snapshotIfDue();
+    }
+
+    /*
+     * Group commands
+     * These have no callers yet, the command loop in ClientThread.run() that would use them is still commented out
+     */
+
+    /**
+     * Creates a new group owned by the given user
+     * @param name      name of the group
+     * @param owner     user creating the group, who joins it straight away
+     * @param invited   users who may join the group
+     * @return          the new group, or null if the name is already taken
+     * @throws IOException  if the group can't be journaled, in which case it isn't created
+     */
+    public synchronized Group createGroup(String name, String owner, List<String> invited) throws IOException {
+        if (findGroup(name) != null) {
+            return null;
+        }
+        record("CREATE", name, owner, Journal.joinList(invited));
+        Group group = new Group(name, owner, invited);
+        groups.add(group);
+        snapshotIfDue();
+        return group;
+    }
+
+    /**
+     * Adds an invited user to a group
+     * @param group     the group to join
+     * @param username  user joining the group
+     * @return          true if the user has joined and false if not
+     * @throws IOException  if the join can't be journaled, in which case the user doesn't join
+     */
+    public synchronized boolean joinGroup(Group group, String username) throws IOException {
+        if (!group.invited(username) || group.alreadyJoined(username)) {
+            return false;
+        }
+        record("JOIN", group.getName(), username);
+        boolean joined = group.join(username);
+        snapshotIfDue();
+        return joined;
+    }
+
+    /**
+     * Logs a group message, journaling its message number first
+     * so the number is never handed out again after a restart
+     * @param group        the group the message was sent to
+     * @param time         time the message was sent, in epoch milliseconds
+     * @param user         user who sent the message
+     * @param message      the message contents
+     * @throws IOException  if the message number can't be journaled, in which case nothing is logged
+     */
+    public synchronized void logGroupMsg(Group group, long time, String user, String message) throws IOException {
+        int number = group.getNumMsgs();
+        long writeStart = Tracer.start();
+        record("MSG", group.getName(), Integer.toString(number));
+        group.logMsg(Group.formatTimestamp(time), user, message);
+        // Match what replaying the MSG record gives, even if the log write failed
+        group.restoreNumMsgs(number + 1);
+        snapshotIfDue();
+        Tracer.stop(Tracer.Stage.DISK_WRITE, writeStart);
+        searchIndex.add(group.getName(), number, time, user, message);
+    }
+
+    /**
+     * Searches the message history of the groups a user has joined
+     * @param username  user searching, only their groups are searched
+     * @param query     the words to search for, all of which must appear
+     * @param sender    only match messages sent by this user, or null for any user
+     * @param from      earliest send time in epoch milliseconds
+     * @param to        latest send time in epoch milliseconds
+     * @return          up to 50 matching messages, oldest first
+     */
+    public List<SearchIndex.Message> searchGroupMsgs(String username, String query, String sender, long from, long to) {
+        Set<String> joined = new HashSet<>();
+        synchronized (this) {
+            for (Group group : groups) {
+                if (group.alreadyJoined(username)) joined.add(group.getName());
+            }
+        }
+        if (joined.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return searchIndex.search(query, joined, sender, from, to, 50);
+    }
+
+    /**
+     * Helper function for returning a Group object
+     * @param name
+     * @return
+     */
+    public synchronized Group findGroup(String name) {
+        long lookupStart = Tracer.start();
+        try {
+            for (Group group : groups) {
+                if (group.getName().equals(name)) {
+                    return group;
+                }
+            }
+            return null;
+        } finally {
+            Tracer.stop(Tracer.Stage.LOOKUP, lookupStart);
+        }
+    }
+
+    /**
+     * Writes a state change to the journal before it is applied
+     * @param fields    the record type followed by its fields
+     * @throws IOException  if the change can't be journaled, so the caller must not apply it
+     */
+    private void record(String... fields) throws IOException {
+        journal.append(fields);
+    }
+
+    /**
+     * Takes a snapshot once enough changes have built up.
+     * Must only be called after the change just recorded has been applied,
+     * since the snapshot replaces the journal that holds it.
+     */
+    private void snapshotIfDue() {
+        if (journal.snapshotDue()) {
+            // The change is already safe in the journal, so a failed snapshot is retried on the next change
+            try {
+                journal.snapshot(snapshotRecords());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not snapshot server state", e);
+            }
+        }
+    }
+
+    /**
+     * Describes the current state as journal records
+     * Active sessions are not included since their connections do not survive a restart
+     * @return
+     */
+    private List<String[]> snapshotRecords() {
+        List<String[]> records = new ArrayList<>();
         for (User user : users) {
-            if (user.getUsername() == username) {
-                return user;
+            records.add(new String[] {"USER", user.getUsername(),
+                    Long.toString(user.getLastActive()), Long.toString(user.getTimeoutStart())});
+        }
+        for (Group group : groups) {
+            records.add(new String[] {"GROUP", group.getName(), Integer.toString(group.getNumMsgs()),
+                    Journal.joinList(group.getMembers()), Journal.joinList(group.getInvited())});
+        }
+        return records;
+    }
+
+    /**
+     * Applies a snapshot or journal record during recovery
+     * Malformed records, such as a line cut short by a crash, are skipped
+     * @param record    the record type followed by its fields
+     */
+    private void applyRecord(String[] record) {
+        try {
+            User user;
+            Group group;
+            switch (record[0]) {
+                case "USER":
+                    user = findUser(record[1]);
+                    if (user != null) {
+                        user.restoreLastActive(Long.parseLong(record[2]));
+                        user.restoreTimeout(Long.parseLong(record[3]));
+                    }
+                    break;
+                case "LOGIN":
+                    user = findUser(record[1]);
+                    if (user != null) user.restoreLastActive(Long.parseLong(record[2]));
+                    break;
+                case "LOGOUT":
+                    // Sessions are never restored, so there is nothing to undo
+                    break;
+                case "TIMEOUT":
+                    user = findUser(record[1]);
+                    if (user != null) user.restoreTimeout(Long.parseLong(record[2]));
+                    break;
+                case "GROUP":
+                    groups.removeIf(g -> g.getName().equals(record[1]));
+                    groups.add(new Group(record[1], Journal.splitList(record[3]), Journal.splitList(record[4]),
+                            Integer.parseInt(record[2])));
+                    break;
+                case "CREATE":
+                    if (findGroup(record[1]) == null) {
+                        groups.add(new Group(record[1], record[2], Journal.splitList(record[3])));
+                    }
+                    break;
+                case "JOIN":
+                    group = findGroup(record[1]);
+                    if (group != null) group.join(record[2]);
+                    break;
+                case "MSG":
+                    group = findGroup(record[1]);
+                    if (group != null) group.restoreNumMsgs(Integer.parseInt(record[2]) + 1);
+                    break;
+                default:
+                    logger.warning("Skipping unknown journal record: " + String.join(Journal.SEPARATOR, record));
             }
+        } catch (RuntimeException e) {
+            logger.warning("Skipping malformed journal record: " + String.join(Journal.SEPARATOR, record));
         }
-        return null;
     }
 
     private static void errorMsgs(String error) {
@@ -106,6 +350,17 @@ public class Server {
 
         Server server = new Server();
 
+        // Export any slow request traces still held in memory when the server is stopped
+        if (Tracer.ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try (PrintWriter writer = new PrintWriter(new FileWriter("trace_dump.txt"))) {
+                    Tracer.dump(writer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+
         // acquire port number from command line parameter
         serverPort = Integer.parseInt(args[0]);
 
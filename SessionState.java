@@ -0,0 +1,39 @@
+/*
+ * Helper Enum to define the lifecycle of a client session
+ *
+ * 11/2023
+ *
+ * */
+
+/**
+ * States a ClientThread moves through, in order:
+ * CONNECTING -> AUTHENTICATING -> ACTIVE -> DRAINING -> CLOSED
+ * A session can only move forward, and can start closing from any state before DRAINING.
+ */
+public enum SessionState {
+    CONNECTING,
+    AUTHENTICATING,
+    ACTIVE,
+    DRAINING,
+    CLOSED;
+
+    /**
+     * Checks if the session is being torn down or already has been
+     * @return  true if the session is DRAINING or CLOSED
+     */
+    public boolean isClosing() {
+        return this == DRAINING || this == CLOSED;
+    }
+
+    /**
+     * Checks if a session in this state is allowed to move to the given state
+     * @param next  the state to move to
+     * @return      true if next is the following state, or DRAINING from any open state
+     */
+    public boolean canMoveTo(SessionState next) {
+        if (next == DRAINING) {
+            return !isClosing();
+        }
+        return next.ordinal() == ordinal() + 1;
+    }
+}
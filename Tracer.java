@@ -0,0 +1,267 @@
+/*
+ * Helper Class to trace where time goes while handling a request
+ * Sampled, low overhead timing of each stage of the request path
+ *
+ * 11/2023
+ *
+ * */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Traces are switched on with system properties when starting the server:
+ *   -Dtrace.sampleRate=0.1     fraction of requests to trace, 0 (the default) disables tracing
+ *   -Dtrace.slowMillis=100     requests taking longer than this are written to trace.file
+ *   -Dtrace.file=slow_requests.txt
+ * Each request handled on a thread is traced from begin() to end(), with the time spent in each
+ * stage added up in between. Traces are kept in a fixed size ring buffer allocated up front.
+ * A slot is owned by one trace until it ends, and a slow trace keeps its slot until a background
+ * thread has appended it to trace.file, so requests never wait on the file. If the slot a new
+ * request would use is still held, that request simply isn't traced.
+ * While a JFR recording has the tcpchat.Command event enabled, each traced request is also
+ * emitted as an event, which is the only allocation tracing makes on the request thread.
+ * When disabled, every call returns straight away.
+ */
+public class Tracer {
+    /**
+     * Stages of the request path, in the order a request passes through them
+     * HANDLE covers working out the command and includes any LOOKUP and DISK_WRITE time spent
+     * doing so. READ and SEND are timed separately and never overlap with it.
+     */
+    public enum Stage {
+        READ,
+        HANDLE,
+        LOOKUP,
+        DISK_WRITE,
+        SEND
+    }
+
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("trace.sampleRate", "0"));
+    public static final boolean ENABLED = SAMPLE_RATE > 0;
+    private static final long SLOW_NANOS = Long.getLong("trace.slowMillis", 100) * 1_000_000;
+    private static final String SLOW_FILE = System.getProperty("trace.file", "slow_requests.txt");
+
+    private static final int CAPACITY = 1024;
+    private static final int NUM_STAGES = Stage.values().length;
+
+    // Ring buffer of traces, one slot per trace
+    private static final long[] startTimes = new long[CAPACITY];
+    private static final long[] startNanos = new long[CAPACITY];
+    private static final long[] totalNanos = new long[CAPACITY];
+    private static final long[] stageNanos = new long[CAPACITY * NUM_STAGES];
+    private static final String[] labels = new String[CAPACITY];
+    private static final AtomicLong nextSlot = new AtomicLong();
+    // State of each slot: free, owned by a running trace, or holding a slow trace not yet written out
+    private static final int FREE = 0;
+    private static final int RUNNING = 1;
+    private static final int SLOW = 2;
+    private static final AtomicIntegerArray slotStates = new AtomicIntegerArray(CAPACITY);
+    private static final EventType EVENT_TYPE = EventType.getEventType(CommandEvent.class);
+
+    static {
+        if (ENABLED) {
+            Thread writer = new Thread(Tracer::writeSlowTraces, "trace-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    // Slot of the trace running on each thread, -1 if none
+    private static final ThreadLocal<int[]> currentSlot = ThreadLocal.withInitial(() -> new int[] {-1});
+
+    /**
+     * Starts tracing a request on the current thread, if it is sampled.
+     * Any trace still running on this thread is ended first.
+     * @param label     what is being handled, replaced with label() once known
+     */
+    public static void begin(String label) {
+        if (!ENABLED) return;
+        int[] current = currentSlot.get();
+        if (current[0] != -1) {
+            end();
+        }
+        if (ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE) {
+            return;
+        }
+        int slot = (int) (nextSlot.getAndIncrement() % CAPACITY);
+        if (!slotStates.compareAndSet(slot, FREE, RUNNING)) {
+            // The ring has wrapped onto a trace that is still running or not yet written out, drop this one
+            return;
+        }
+        startTimes[slot] = System.currentTimeMillis();
+        startNanos[slot] = System.nanoTime();
+        totalNanos[slot] = 0;
+        for (int i = 0; i < NUM_STAGES; i++) {
+            stageNanos[slot * NUM_STAGES + i] = 0;
+        }
+        labels[slot] = label;
+        current[0] = slot;
+    }
+
+    /**
+     * Names the request being traced on the current thread, e.g. with its command
+     * @param label     what is being handled
+     */
+    public static void label(String label) {
+        if (!ENABLED) return;
+        int slot = currentSlot.get()[0];
+        if (slot != -1) {
+            labels[slot] = label;
+        }
+    }
+
+    /**
+     * Starts timing a stage
+     * @return  the time to pass to stop(), or 0 if the current request isn't being traced
+     */
+    public static long start() {
+        if (!ENABLED || currentSlot.get()[0] == -1) return 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since start() to a stage of the current trace
+     * @param stage     the stage that just finished
+     * @param start     the value returned by start()
+     */
+    public static void stop(Stage stage, long start) {
+        if (start == 0) return;
+        int slot = currentSlot.get()[0];
+        if (slot != -1) {
+            stageNanos[slot * NUM_STAGES + stage.ordinal()] += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Finishes the trace running on the current thread
+     * Slow requests are left in the ring for the background writer to append to the slow request file
+     */
+    public static void end() {
+        if (!ENABLED) return;
+        int[] current = currentSlot.get();
+        int slot = current[0];
+        if (slot == -1) return;
+        current[0] = -1;
+        totalNanos[slot] = System.nanoTime() - startNanos[slot];
+
+        if (EVENT_TYPE.isEnabled()) {
+            CommandEvent event = new CommandEvent();
+            event.command = labels[slot];
+            event.total = totalNanos[slot];
+            event.read = stageNanos[slot * NUM_STAGES + Stage.READ.ordinal()];
+            event.handle = stageNanos[slot * NUM_STAGES + Stage.HANDLE.ordinal()];
+            event.lookup = stageNanos[slot * NUM_STAGES + Stage.LOOKUP.ordinal()];
+            event.diskWrite = stageNanos[slot * NUM_STAGES + Stage.DISK_WRITE.ordinal()];
+            event.send = stageNanos[slot * NUM_STAGES + Stage.SEND.ordinal()];
+            event.commit();
+        }
+
+        slotStates.set(slot, totalNanos[slot] >= SLOW_NANOS ? SLOW : FREE);
+    }
+
+    /**
+     * Runs on the background writer thread, appending slow traces to the slow request file
+     * and freeing their slots once written
+     */
+    private static void writeSlowTraces() {
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean pending = false;
+            for (int slot = 0; slot < CAPACITY && !pending; slot++) {
+                pending = slotStates.get(slot) == SLOW;
+            }
+            if (!pending) continue;
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(SLOW_FILE, true)))) {
+                for (int slot = 0; slot < CAPACITY; slot++) {
+                    if (slotStates.get(slot) == SLOW) {
+                        writer.println(format(slot));
+                        slotStates.set(slot, FREE);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes every finished trace still in the ring buffer that took longer than the slow threshold
+     * @param writer    where to write the traces
+     */
+    public static void dump(PrintWriter writer) {
+        if (!ENABLED) return;
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            if (slotStates.get(slot) != RUNNING && labels[slot] != null && totalNanos[slot] >= SLOW_NANOS) {
+                writer.println(format(slot));
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Formats a trace as: startTime; label; total; stage=time...
+     * All times other than startTime are in microseconds
+     */
+    private static String format(int slot) {
+        StringBuilder line = new StringBuilder();
+        line.append(startTimes[slot]).append("; ").append(labels[slot])
+                .append("; total=").append(totalNanos[slot] / 1000);
+        for (Stage stage : Stage.values()) {
+            line.append("; ").append(stage.name().toLowerCase()).append('=')
+                    .append(stageNanos[slot * NUM_STAGES + stage.ordinal()] / 1000);
+        }
+        return line.toString();
+    }
+
+    /**
+     * JFR event recorded for every traced request
+     */
+    @Name("tcpchat.Command")
+    @Label("Command")
+    @Category("TCP Chat")
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Total")
+        @Timespan(Timespan.NANOSECONDS)
+        long total;
+
+        @Label("Socket Read")
+        @Timespan(Timespan.NANOSECONDS)
+        long read;
+
+        @Label("Command Handling")
+        @Timespan(Timespan.NANOSECONDS)
+        long handle;
+
+        @Label("Server Lookups")
+        @Timespan(Timespan.NANOSECONDS)
+        long lookup;
+
+        @Label("Disk Write")
+        @Timespan(Timespan.NANOSECONDS)
+        long diskWrite;
+
+        @Label("Send")
+        @Timespan(Timespan.NANOSECONDS)
+        long send;
+    }
+}
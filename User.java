@@ -82,6 +82,30 @@ public class User {
         this.timeoutStart = System.currentTimeMillis() / 1000;
     }
 
+    /**
+     * Getter for when the last timeout started
+     * @return
+     */
+    public long getTimeoutStart() {
+        return timeoutStart;
+    }
+
+    /**
+     * Restores a timeout recorded in the server journal
+     * @param timeoutStart
+     */
+    public synchronized void restoreTimeout(long timeoutStart) {
+        this.timeoutStart = timeoutStart;
+    }
+
+    /**
+     * Restores a last active time recorded in the server journal
+     * @param lastActive
+     */
+    public synchronized void restoreLastActive(long lastActive) {
+        this.lastActive = lastActive;
+    }
+
     /**
      * Getter for username 
      * @return 